@@ -0,0 +1,446 @@
+package dev.markusk.bluelight.database;
+
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the article corpus between the database and gzip compressed files using postgres COPY.
+ * Every table is transferred on its own thread and connection, rows are never materialized in the heap.
+ * The data source does not pool, so a transfer opens up to six server connections at once
+ * (one coordinating connection and one per table).
+ */
+public class PostgresCorpusTransfer {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final String EXPORT_SNAPSHOT = "SELECT pg_export_snapshot()";
+  private static final String SET_SNAPSHOT = "SET TRANSACTION SNAPSHOT '%s'";
+  private static final String ARTICLES_IN_RANGE = "SELECT articles.article_id FROM articles WHERE %s";
+  private static final String CREATE_STAGING = "CREATE UNLOGGED TABLE %s (LIKE %s)";
+  private static final String DROP_STAGING = "DROP TABLE IF EXISTS %s";
+
+  private static final String MANIFEST_FORMAT = "format";
+  private static final String MANIFEST_FROM = "from";
+  private static final String MANIFEST_TO = "to";
+
+  private final Logger logger;
+  private final PostgresDataManager dataSource;
+
+  public PostgresCorpusTransfer(final PostgresDataManager dataSource) {
+    this.dataSource = dataSource;
+    this.logger = dataSource.getLogger();
+  }
+
+  /**
+   * Exports all corpus tables into the given directory. All tables are read from one shared snapshot and written
+   * to temporary files first. Once every table was written and synced, the previous manifest is removed, the files
+   * are moved into place and a new manifest is written last, so a directory without a manifest never passes
+   * for a complete export.
+   *
+   * @param directory target directory, created if missing
+   * @param format    copy format of the written files
+   * @param from      inclusive lower bound of the article release time, or null
+   * @param to        exclusive upper bound of the article release time, or null
+   */
+  public void exportCorpus(final Path directory, final Format format, final Date from, final Date to)
+      throws IOException, SQLException {
+    Files.createDirectories(directory);
+    final String condition = this.buildCondition(from, to);
+    final Path manifest = directory.resolve(format.getManifestName());
+    final List<Path> tempFiles = new ArrayList<>();
+    try {
+      try (final Connection connection = this.dataSource.getDataSource().getConnection()) {
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        final String snapshot = this.exportSnapshot(connection);
+
+        final List<Callable<Long>> tasks = new ArrayList<>();
+        for (final Table table : Table.values()) {
+          final Path tempFile = this.getTempFile(directory.resolve(table.getFileName(format)));
+          tempFiles.add(tempFile);
+          tasks.add(() -> this.exportTable(table, tempFile, format, condition, snapshot));
+        }
+        // the snapshot is only valid as long as the exporting transaction is open
+        this.runParallel(tasks);
+        connection.commit();
+      }
+
+      // as soon as the first file is replaced the directory no longer holds a consistent export
+      Files.deleteIfExists(manifest);
+      this.syncDirectory(directory);
+      final Properties properties = new Properties();
+      properties.setProperty(MANIFEST_FORMAT, format.getName());
+      if (from != null) properties.setProperty(MANIFEST_FROM, String.valueOf(from.getTime()));
+      if (to != null) properties.setProperty(MANIFEST_TO, String.valueOf(to.getTime()));
+      for (final Table table : Table.values()) {
+        final Path file = directory.resolve(table.getFileName(format));
+        Files.move(this.getTempFile(file), file, StandardCopyOption.ATOMIC_MOVE);
+        properties.setProperty(table.getName(), String.valueOf(Files.size(file)));
+      }
+      this.syncDirectory(directory);
+
+      final Path tempManifest = this.getTempFile(manifest);
+      tempFiles.add(tempManifest);
+      this.writeManifest(tempManifest, properties);
+      Files.move(tempManifest, manifest, StandardCopyOption.ATOMIC_MOVE);
+      this.syncDirectory(directory);
+    } finally {
+      this.deleteTempFiles(tempFiles);
+    }
+  }
+
+  /**
+   * Imports all corpus tables from a complete export written by {@link #exportCorpus(Path, Format, Date, Date)},
+   * the files are checked against the manifest of the export before anything is loaded.
+   * The files are copied in parallel into unlogged staging tables and merged in a single transaction, so either
+   * the whole corpus is imported or nothing is.
+   * <p>
+   * Rows that already exist are kept as they are. Topics and locations are matched by name, the imported
+   * links are remapped onto the existing topic and location ids, so time range exports can be imported
+   * into a database that already contains parts of the corpus.
+   * <p>
+   * Atomicity and merging are paid for with throughput: only the staging copies run in parallel, the merge is
+   * a serial INSERT ... SELECT per table in one WAL-logged transaction that maintains every index, so each row
+   * is written twice and the import runs noticeably slower than the export.
+   */
+  public void importCorpus(final Path directory, final Format format) throws IOException, SQLException {
+    this.checkManifest(directory, format);
+    final String stagingPrefix = "corpus_import_" + UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+
+    try {
+      try (final Connection connection = this.dataSource.getDataSource().getConnection()) {
+        try (final Statement statement = connection.createStatement()) {
+          for (final Table table : Table.values()) {
+            statement.execute(String.format(CREATE_STAGING, table.getStagingName(stagingPrefix), table.getName()));
+          }
+        }
+
+        final List<Callable<Long>> tasks = new ArrayList<>();
+        for (final Table table : Table.values()) {
+          final Path file = directory.resolve(table.getFileName(format));
+          tasks.add(() -> this.importTable(table, table.getStagingName(stagingPrefix), file, format));
+        }
+        this.runParallel(tasks);
+        this.mergeStagingTables(connection, stagingPrefix);
+      }
+    } finally {
+      // runs on a fresh connection after the merging one is closed, so an unfinished transaction is never committed
+      this.dropStagingTables(stagingPrefix);
+    }
+  }
+
+  private void mergeStagingTables(final Connection connection, final String stagingPrefix) throws SQLException {
+    connection.setAutoCommit(false);
+    try (final Statement statement = connection.createStatement()) {
+      for (final Table table : Table.values()) {
+        final int rows = statement.executeUpdate(table.getMergeStatement(stagingPrefix));
+        this.logger.debug(String.format("Merged %d new rows into %s", rows, table.getName()));
+      }
+      connection.commit();
+    } catch (Exception e) {
+      try {
+        connection.rollback();
+      } catch (SQLException rollbackException) {
+        e.addSuppressed(rollbackException);
+      }
+      throw e;
+    }
+  }
+
+  private long exportTable(final Table table, final Path file, final Format format, final String condition,
+                           final String snapshot) throws SQLException, IOException {
+    final String source = condition == null
+        ? String.format("%s (%s)", table.getName(), table.getColumns())
+        : String.format("(%s)", table.getFilteredSelect(String.format(ARTICLES_IN_RANGE, condition)));
+    final String query = String.format("COPY %s TO STDOUT WITH (FORMAT %s)", source, format.getName());
+    try (final Connection connection = this.dataSource.getDataSource().getConnection();
+         final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+             StandardOpenOption.TRUNCATE_EXISTING);
+         final GZIPOutputStream outputStream = new FastGZIPOutputStream(Channels.newOutputStream(channel),
+             BUFFER_SIZE)) {
+      connection.setAutoCommit(false);
+      connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+      try (final Statement statement = connection.createStatement()) {
+        statement.execute(String.format(SET_SNAPSHOT, snapshot));
+      }
+      final long rows = this.getCopyManager(connection).copyOut(query, outputStream);
+      outputStream.finish();
+      channel.force(true);
+      connection.commit();
+      this.logger.debug(String.format("Exported %d rows from %s to %s", rows, table.getName(), file));
+      return rows;
+    }
+  }
+
+  private long importTable(final Table table, final String stagingTable, final Path file, final Format format)
+      throws SQLException, IOException {
+    final String query = String.format("COPY %s (%s) FROM STDIN WITH (FORMAT %s)",
+        stagingTable, table.getColumns(), format.getName());
+    try (final Connection connection = this.dataSource.getDataSource().getConnection();
+         final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+         final InputStream inputStream = new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE)) {
+      final long rows = this.getCopyManager(connection).copyIn(query, inputStream, BUFFER_SIZE);
+      this.logger.debug(String.format("Staged %d rows for %s from %s", rows, table.getName(), file));
+      return rows;
+    }
+  }
+
+  private void deleteTempFiles(final List<Path> tempFiles) {
+    for (final Path tempFile : tempFiles) {
+      try {
+        Files.deleteIfExists(tempFile);
+      } catch (IOException e) {
+        this.logger.warn(String.format("Could not delete temporary export file %s", tempFile), e);
+      }
+    }
+  }
+
+  private void dropStagingTables(final String stagingPrefix) {
+    try (final Connection connection = this.dataSource.getDataSource().getConnection();
+         final Statement statement = connection.createStatement()) {
+      for (final Table table : Table.values()) {
+        statement.execute(String.format(DROP_STAGING, table.getStagingName(stagingPrefix)));
+      }
+    } catch (SQLException e) {
+      this.logger.warn(String.format("Could not drop staging tables %s_*", stagingPrefix), e);
+    }
+  }
+
+  private void writeManifest(final Path file, final Properties properties) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      properties.store(Channels.newOutputStream(channel), "bluelight corpus export");
+      channel.force(true);
+    }
+  }
+
+  private void checkManifest(final Path directory, final Format format) throws IOException {
+    final Path manifest = directory.resolve(format.getManifestName());
+    if (!Files.exists(manifest))
+      throw new IOException(String.format("Missing manifest %s, the export is incomplete", manifest));
+    final Properties properties = new Properties();
+    try (final InputStream inputStream = Files.newInputStream(manifest)) {
+      properties.load(inputStream);
+    }
+    if (!format.getName().equals(properties.getProperty(MANIFEST_FORMAT)))
+      throw new IOException(String.format("Manifest %s does not describe a %s export", manifest, format.getName()));
+    for (final Table table : Table.values()) {
+      final Path file = directory.resolve(table.getFileName(format));
+      if (!Files.exists(file)) throw new IOException(String.format("Missing export file %s", file));
+      if (!String.valueOf(Files.size(file)).equals(properties.getProperty(table.getName())))
+        throw new IOException(String.format("Export file %s does not match manifest %s", file, manifest));
+    }
+  }
+
+  private void syncDirectory(final Path directory) throws IOException {
+    try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  private Path getTempFile(final Path file) {
+    return file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+  }
+
+  private String exportSnapshot(final Connection connection) throws SQLException {
+    try (final Statement statement = connection.createStatement();
+         final ResultSet resultSet = statement.executeQuery(EXPORT_SNAPSHOT)) {
+      resultSet.next();
+      return resultSet.getString(1);
+    }
+  }
+
+  private CopyManager getCopyManager(final Connection connection) throws SQLException {
+    return connection.unwrap(PGConnection.class).getCopyAPI();
+  }
+
+  private String buildCondition(final Date from, final Date to) {
+    if (from == null && to == null) return null;
+    // COPY does not accept bind parameters, the literals are rendered from Timestamp and are therefore safe.
+    // Timestamp#toString uses the default time zone of the jvm, just like PostgresDao#addArticle when it
+    // writes release_time through setTimestamp, so the bounds compare against the same local time.
+    final List<String> conditions = new ArrayList<>();
+    if (from != null)
+      conditions.add(String.format("articles.release_time >= '%s'::timestamp", new Timestamp(from.getTime())));
+    if (to != null)
+      conditions.add(String.format("articles.release_time < '%s'::timestamp", new Timestamp(to.getTime())));
+    return String.join(" AND ", conditions);
+  }
+
+  private void runParallel(final List<Callable<Long>> tasks) throws IOException, SQLException {
+    if (tasks.isEmpty()) return;
+    final ExecutorService executorService = Executors.newFixedThreadPool(tasks.size());
+    final CompletionService<Long> completionService = new ExecutorCompletionService<>(executorService);
+    try {
+      for (final Callable<Long> task : tasks) {
+        completionService.submit(task);
+      }
+      // tasks are taken in completion order, so the first failure aborts the others right away
+      for (int i = 0; i < tasks.size(); i++) {
+        try {
+          completionService.take().get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+          if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+    } finally {
+      // interrupting closes the file channels of running tasks, which makes their COPY fail and get cancelled
+      executorService.shutdownNow();
+      this.awaitTermination(executorService);
+    }
+  }
+
+  private void awaitTermination(final ExecutorService executorService) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (executorService.awaitTermination(1, TimeUnit.MINUTES)) break;
+        this.logger.warn("Still waiting for corpus transfer tasks to stop");
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Nearly all of the corpus is article content in a single stream, so compression speed matters more than ratio.
+   */
+  private static class FastGZIPOutputStream extends GZIPOutputStream {
+
+    FastGZIPOutputStream(final OutputStream outputStream, final int size) throws IOException {
+      super(outputStream, size);
+      this.def.setLevel(Deflater.BEST_SPEED);
+    }
+  }
+
+  public enum Format {
+    BINARY("binary", "bin.gz"),
+    CSV("csv", "csv.gz");
+
+    private final String name;
+    private final String extension;
+
+    Format(final String name, final String extension) {
+      this.name = name;
+      this.extension = extension;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+
+    public String getManifestName() {
+      return String.format("manifest.%s.properties", this.name);
+    }
+  }
+
+  /**
+   * The order of the constants is the merge order, link tables have to come after the tables they reference.
+   * Merge statements use %1$s for the staging prefix and %2$s for the column list, link rows without a
+   * referenced topic or location are kept just like INSERT_TOPIC_LINK and INSERT_LOCATION_LINK write them.
+   */
+  private enum Table {
+    ARTICLES("articles", "article_id, title, url, release_time, fetch_time, file_hash, article_content",
+        "SELECT %1$s FROM articles WHERE article_id IN (%2$s)",
+        "INSERT INTO articles (%2$s) SELECT %2$s FROM %1$s_articles ON CONFLICT DO NOTHING"),
+    LOCATIONS("locations", "uuid, location, latitude, longitude, indexed",
+        "SELECT %1$s FROM locations WHERE uuid IN (SELECT location_uuid FROM article_location WHERE article_id IN (%2$s))",
+        "INSERT INTO locations (%2$s) SELECT %2$s FROM %1$s_locations ON CONFLICT DO NOTHING"),
+    TOPICS("topics", "uuid, topic",
+        "SELECT %1$s FROM topics WHERE uuid IN (SELECT topic_uuid FROM article_topic WHERE article_id IN (%2$s))",
+        "INSERT INTO topics (%2$s) SELECT %2$s FROM %1$s_topics ON CONFLICT DO NOTHING"),
+    ARTICLE_LOCATION("article_location", "uuid, article_id, location_uuid",
+        "SELECT %1$s FROM article_location WHERE article_id IN (%2$s)",
+        "INSERT INTO article_location (%2$s) SELECT s.uuid, a.article_id, l.uuid FROM %1$s_article_location s "
+            + "INNER JOIN articles a ON a.article_id = s.article_id "
+            + "LEFT JOIN %1$s_locations sl ON sl.uuid = s.location_uuid "
+            + "LEFT JOIN locations l ON l.location = sl.location "
+            + "WHERE s.location_uuid IS NULL OR l.uuid IS NOT NULL ON CONFLICT DO NOTHING"),
+    ARTICLE_TOPIC("article_topic", "uuid, article_id, topic_uuid",
+        "SELECT %1$s FROM article_topic WHERE article_id IN (%2$s)",
+        "INSERT INTO article_topic (%2$s) SELECT s.uuid, a.article_id, t.uuid FROM %1$s_article_topic s "
+            + "INNER JOIN articles a ON a.article_id = s.article_id "
+            + "LEFT JOIN %1$s_topics st ON st.uuid = s.topic_uuid "
+            + "LEFT JOIN topics t ON t.topic = st.topic "
+            + "WHERE s.topic_uuid IS NULL OR t.uuid IS NOT NULL ON CONFLICT DO NOTHING");
+
+    private final String name;
+    private final String columns;
+    private final String filteredSelect;
+    private final String mergeStatement;
+
+    Table(final String name, final String columns, final String filteredSelect, final String mergeStatement) {
+      this.name = name;
+      this.columns = columns;
+      this.filteredSelect = filteredSelect;
+      this.mergeStatement = mergeStatement;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getColumns() {
+      return columns;
+    }
+
+    public String getFileName(final Format format) {
+      return String.format("%s.%s", this.name, format.getExtension());
+    }
+
+    public String getStagingName(final String stagingPrefix) {
+      return String.format("%s_%s", stagingPrefix, this.name);
+    }
+
+    public String getFilteredSelect(final String articleIds) {
+      return String.format(this.filteredSelect, this.columns, articleIds);
+    }
+
+    public String getMergeStatement(final String stagingPrefix) {
+      return String.format(this.mergeStatement, stagingPrefix, this.columns);
+    }
+  }
+
+}
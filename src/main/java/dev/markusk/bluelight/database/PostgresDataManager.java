@@ -11,8 +11,10 @@ import dev.markusk.bluelight.api.util.ThrowingFunction;
 import org.apache.logging.log4j.Logger;
 import org.postgresql.ds.PGConnectionPoolDataSource;
 
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -242,6 +244,27 @@ public class PostgresDataManager implements AbstractDataManager {
     return false;
   }
 
+  public boolean exportCorpus(final Path directory, final PostgresCorpusTransfer.Format format, final Date from,
+                              final Date to) {
+    try {
+      new PostgresCorpusTransfer(this).exportCorpus(directory, format, from, to);
+      return true;
+    } catch (Exception e) {
+      this.logger.error("Error in exportCorpus", e);
+    }
+    return false;
+  }
+
+  public boolean importCorpus(final Path directory, final PostgresCorpusTransfer.Format format) {
+    try {
+      new PostgresCorpusTransfer(this).importCorpus(directory, format);
+      return true;
+    } catch (Exception e) {
+      this.logger.error("Error in importCorpus", e);
+    }
+    return false;
+  }
+
   public PGConnectionPoolDataSource getDataSource() {
     return dataSource;
   }